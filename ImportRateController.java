@@ -0,0 +1,297 @@
+package org.fhcrc.centernet.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adaptive rate controller for the write and replicate stages of the LMS
+ * importer. Each imported event reports how long its save and replication
+ * took; the controller keeps the most recent samples in a sliding window
+ * and, at the end of every batch, compares their average to the target
+ * latency. The window is cleared whenever the controller backs off, so the
+ * next decision reacts to how the repository is doing now rather than to a
+ * spike it has already backed off from.
+ *
+ * When the repository is slow the batch size is halved and a pause is taken
+ * between batches, so editors working on the author instance get the
+ * repository back. Once the importer is down to a single event per batch
+ * with a pause, the pause is only doubled after a full window of slow
+ * samples. When latency recovers the pause is shrunk first and then the
+ * batch size is grown again, one event at a time.
+ */
+public class ImportRateController implements ImportRateMBean {
+
+	private static final Logger log = LoggerFactory.getLogger(ImportRateController.class);
+	/* Smallest pause we bother sleeping for, in milliseconds */
+	private static final long MIN_PAUSE = 250;
+	private static final long NANOS_PER_MILLI = 1000000L;
+
+	/**
+	 * Source of time and sleeping for the controller, so that tests can
+	 * simulate a slow repository without waiting on a real one.
+	 */
+	public interface Clock {
+
+		/**
+		 * @return the current value of a monotonic timer, in nanoseconds
+		 */
+		long nanoTime();
+
+		/**
+		 * Pauses the calling thread by waiting on a monitor it holds, so the
+		 * pause can be ended early by notifying that monitor.
+		 * @param monitor the object to wait on
+		 * @param millis longest time to pause for, in milliseconds
+		 * @throws InterruptedException if the thread is interrupted while
+		 * pausing
+		 */
+		void await(Object monitor, long millis) throws InterruptedException;
+
+	}
+
+	/* The real clock, used outside of tests */
+	static final Clock SYSTEM_CLOCK = new Clock() {
+
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		@Override
+		public void await(Object monitor, long millis) throws InterruptedException {
+			monitor.wait(millis);
+		}
+
+	};
+
+	/* Configuration */
+	private final String logPrefix;
+	private final long targetLatency;
+	private final int maxBatchSize;
+	private final long maxPause;
+	private final Clock clock;
+
+	/* Sliding window of latency samples recorded since the last back-off, in milliseconds */
+	private final long[] window;
+	private int windowIndex;
+	private int windowCount;
+	private long windowTotal;
+
+	/* Current state */
+	private int batchSize;
+	private long pause;
+	private int writesInBatch;
+	private long lastAverageLatency;
+	private boolean stopped;
+
+	/**
+	 * @param logPrefix prefix for log messages, identifying the feed
+	 * @param targetLatency the save + replicate latency, in milliseconds,
+	 * above which the importer should back off
+	 * @param windowSize largest number of recent events to average latency
+	 * over. The window starts empty again after every back-off, and at one
+	 * event per batch this many slow events are needed to double the pause
+	 * @param maxBatchSize largest number of events written between pauses
+	 * @param maxPause longest pause, in milliseconds, taken between batches
+	 */
+	public ImportRateController(String logPrefix, long targetLatency, int windowSize, int maxBatchSize, long maxPause) {
+		this(logPrefix, targetLatency, windowSize, maxBatchSize, maxPause, SYSTEM_CLOCK);
+	}
+
+	ImportRateController(String logPrefix, long targetLatency, int windowSize, int maxBatchSize, long maxPause,
+			Clock clock) {
+
+		this.logPrefix = logPrefix;
+		this.targetLatency = Math.max(1, targetLatency);
+		this.window = new long[Math.max(1, windowSize)];
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.maxPause = Math.max(0, maxPause);
+		this.clock = clock;
+		reset();
+
+	}
+
+	/**
+	 * Clears the latency samples and returns the controller to full speed.
+	 * Called at the start of every import run.
+	 */
+	public synchronized void reset() {
+
+		clearWindow();
+		batchSize = maxBatchSize;
+		pause = 0;
+		writesInBatch = 0;
+		lastAverageLatency = 0;
+
+	}
+
+	/**
+	 * Ends any pause in progress and stops the controller from pausing
+	 * again, so a deactivated feed can finish its current line and stop
+	 * without its thread being interrupted.
+	 */
+	public synchronized void stop() {
+
+		stopped = true;
+		notifyAll();
+
+	}
+
+	/**
+	 * Marks the start of the write and replicate stages for one event.
+	 * @return a timestamp to pass to {@link #recordWrite(long)}
+	 */
+	public long startWrite() {
+		return clock.nanoTime();
+	}
+
+	/**
+	 * Records how long the write and replicate stages took for one event.
+	 * @param startTime the timestamp returned by {@link #startWrite()}
+	 */
+	public void recordWrite(long startTime) {
+		recordLatency((clock.nanoTime() - startTime) / NANOS_PER_MILLI);
+	}
+
+	/**
+	 * Records how long the write and replicate stages took for one event.
+	 * @param millis elapsed time in milliseconds
+	 */
+	public synchronized void recordLatency(long millis) {
+
+		if (windowCount == window.length) {
+			windowTotal -= window[windowIndex];
+		} else {
+			windowCount++;
+		}
+		window[windowIndex] = millis;
+		windowTotal += millis;
+		windowIndex = (windowIndex + 1) % window.length;
+
+	}
+
+	/**
+	 * Called after each event is written. Once a full batch has been written
+	 * the rate is adjusted and, if the repository is under pressure, the
+	 * calling thread pauses before the next batch starts. The pause ends
+	 * early if the controller is stopped.
+	 * @throws InterruptedException if the import thread is interrupted while
+	 * pausing
+	 */
+	public synchronized void throttle() throws InterruptedException {
+
+		writesInBatch++;
+		if (writesInBatch < batchSize) {
+			return;
+		}
+		writesInBatch = 0;
+		adjust();
+
+		if (pause > 0 && !stopped) {
+
+			log.debug(logPrefix + "Pausing import for " + pause + "ms");
+			long deadline = clock.nanoTime() + pause * NANOS_PER_MILLI;
+			long remaining = pause;
+			/* Waiting releases the lock, so stop() and the MBean getters are not held up */
+			while (!stopped && remaining > 0) {
+				clock.await(this, remaining);
+				remaining = (deadline - clock.nanoTime()) / NANOS_PER_MILLI;
+			}
+
+		}
+
+	}
+
+	/*
+	 * Backs off when the samples in the window average above the target and
+	 * recovers gradually when they drop back below it. The window is cleared
+	 * on every back-off so the samples that caused it are not judged again.
+	 */
+	private void adjust() {
+
+		if (windowCount == 0) {
+			return;
+		}
+
+		int oldBatchSize = batchSize;
+		long oldPause = pause;
+		long average = windowTotal / windowCount;
+
+		if (average > targetLatency) {
+
+			if (batchSize > 1 || pause == 0) {
+				batchSize = Math.max(1, batchSize / 2);
+				pause = Math.min(maxPause, Math.max(pause, MIN_PAUSE));
+			} else if (windowCount == window.length) {
+				pause = Math.min(maxPause, Math.max(MIN_PAUSE, pause * 2));
+			} else {
+				/* Already pausing after every event; wait for a full window before slowing further */
+				return;
+			}
+
+			lastAverageLatency = average;
+			clearWindow();
+
+		} else if (pause > 0) {
+
+			pause = pause / 2 < MIN_PAUSE ? 0 : pause / 2;
+
+		} else if (batchSize < maxBatchSize) {
+
+			batchSize++;
+
+		}
+
+		if (batchSize != oldBatchSize || pause != oldPause) {
+			log.info(logPrefix + "Average write latency " + average + "ms (target " + targetLatency
+					+ "ms), batch size now " + batchSize + ", pause now " + pause + "ms, rate now "
+					+ String.format("%.2f", getCurrentRate()) + " events/s");
+		}
+
+	}
+
+	private void clearWindow() {
+
+		windowIndex = 0;
+		windowCount = 0;
+		windowTotal = 0;
+
+	}
+
+	/**
+	 * @return average save + replicate latency over the sliding window, or
+	 * over the samples the last back-off was based on if none have been
+	 * recorded since, in milliseconds
+	 */
+	@Override
+	public synchronized long getAverageLatency() {
+		return windowCount == 0 ? lastAverageLatency : windowTotal / windowCount;
+	}
+
+	/**
+	 * @return the estimated number of events per second the importer is
+	 * currently allowed to write, based on the current batch size, pause and
+	 * average latency
+	 */
+	@Override
+	public synchronized double getCurrentRate() {
+
+		long batchMillis = batchSize * getAverageLatency() + pause;
+		if (batchMillis <= 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return batchSize * 1000.0 / batchMillis;
+
+	}
+
+	@Override
+	public synchronized int getBatchSize() {
+		return batchSize;
+	}
+
+	@Override
+	public synchronized long getPause() {
+		return pause;
+	}
+
+}
@@ -0,0 +1,355 @@
+package org.fhcrc.centernet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ImportRateControllerTest {
+
+	private static final long TARGET_LATENCY = 500;
+	private static final int WINDOW_SIZE = 20;
+	private static final int MAX_BATCH_SIZE = 10;
+	private static final long MAX_PAUSE = 10000;
+
+	private FakeClock clock;
+	private SlowRepository repository;
+	private ImportRateController controller;
+
+	@Before
+	public void setUp() {
+
+		clock = new FakeClock();
+		repository = new SlowRepository(clock);
+		controller = new ImportRateController("TEST: ", TARGET_LATENCY, WINDOW_SIZE, MAX_BATCH_SIZE, MAX_PAUSE, clock);
+
+	}
+
+	@Test
+	public void startsAtFullSpeed() throws InterruptedException {
+
+		repository.latency = 100;
+		importEvents(30);
+
+		assertEquals(MAX_BATCH_SIZE, controller.getBatchSize());
+		assertEquals(0, controller.getPause());
+		assertTrue(clock.sleeps.isEmpty());
+
+	}
+
+	@Test
+	public void backsOffWhenRepositoryIsSlow() throws InterruptedException {
+
+		repository.latency = 2000;
+		importEvents(10);
+
+		assertEquals(5, controller.getBatchSize());
+		assertEquals(250, controller.getPause());
+		assertEquals(1, clock.sleeps.size());
+		assertEquals(Long.valueOf(250), clock.sleeps.get(0));
+
+	}
+
+	@Test
+	public void recoversQuicklyAfterShortSpike() throws InterruptedException {
+
+		repository.latency = 2000;
+		importEvents(10);
+		repository.latency = 100;
+
+		/* One fast batch clears the pause */
+		importEvents(5);
+		assertEquals(5, controller.getBatchSize());
+		assertEquals(0, controller.getPause());
+
+		/* Then the batch size grows back one event at a time */
+		importEvents(5 + 6 + 7 + 8 + 9);
+		assertEquals(MAX_BATCH_SIZE, controller.getBatchSize());
+		assertEquals(0, controller.getPause());
+
+	}
+
+	@Test
+	public void onlyDoublesPauseAfterFullWindowAtSingleEventBatches() throws InterruptedException {
+
+		repository.latency = 2000;
+		/* Batches of 10, 5 and 2 events take the batch size down to one */
+		importEvents(10 + 5 + 2);
+		assertEquals(1, controller.getBatchSize());
+		assertEquals(250, controller.getPause());
+
+		importEvents(WINDOW_SIZE - 1);
+		assertEquals(250, controller.getPause());
+
+		importEvents(1);
+		assertEquals(500, controller.getPause());
+
+	}
+
+	@Test
+	public void keepsThrottlingWhenSlownessReturnsAfterOneFastEvent() throws InterruptedException {
+
+		repository.latency = 2000;
+		importEvents(10 + 5 + 2);
+		assertEquals(1, controller.getBatchSize());
+
+		/* A single fast event clears the pause... */
+		repository.latency = 100;
+		importEvents(1);
+		assertEquals(0, controller.getPause());
+
+		/* ...but the next slow one brings it straight back */
+		repository.latency = 2000;
+		importEvents(1);
+		assertEquals(250, controller.getPause());
+
+		int sleepsBefore = clock.sleeps.size();
+		importEvents(1000);
+		assertEquals(1, controller.getBatchSize());
+		assertEquals(MAX_PAUSE, controller.getPause());
+		assertEquals(1000, clock.sleeps.size() - sleepsBefore);
+
+	}
+
+	@Test
+	public void staysAtFullSpeedWhenMixedLatencyAveragesUnderTarget() throws InterruptedException {
+
+		/* Alternating 100ms and 800ms writes average 450ms */
+		importMixedEvents(40, 100, 800);
+
+		assertEquals(MAX_BATCH_SIZE, controller.getBatchSize());
+		assertEquals(0, controller.getPause());
+		assertTrue(clock.sleeps.isEmpty());
+
+	}
+
+	@Test
+	public void backsOffWhenMixedLatencyAveragesOverTarget() throws InterruptedException {
+
+		/* Alternating 100ms and 1000ms writes average 550ms */
+		importMixedEvents(10, 100, 1000);
+
+		assertEquals(5, controller.getBatchSize());
+		assertEquals(250, controller.getPause());
+
+	}
+
+	@Test
+	public void alternatesBetweenRecoveryAndBackOff() throws InterruptedException {
+
+		repository.latency = 2000;
+		importEvents(10);
+		assertEquals(5, controller.getBatchSize());
+		assertEquals(250, controller.getPause());
+
+		repository.latency = 100;
+		importEvents(5);
+		assertEquals(5, controller.getBatchSize());
+		assertEquals(0, controller.getPause());
+
+		/* The fast samples stay in the window, but five slow ones still outweigh them */
+		repository.latency = 2000;
+		importEvents(5);
+		assertEquals(2, controller.getBatchSize());
+		assertEquals(250, controller.getPause());
+
+		repository.latency = 100;
+		importEvents(2 + 2);
+		assertEquals(3, controller.getBatchSize());
+		assertEquals(0, controller.getPause());
+
+		repository.latency = 2000;
+		importEvents(3);
+		assertEquals(1, controller.getBatchSize());
+		assertEquals(250, controller.getPause());
+
+		repository.latency = 100;
+		importEvents(1 + 1);
+		assertEquals(2, controller.getBatchSize());
+		assertEquals(0, controller.getPause());
+
+	}
+
+	@Test
+	public void pauseNeverExceedsMaximum() throws InterruptedException {
+
+		repository.latency = 2000;
+		importEvents(1000);
+
+		assertEquals(1, controller.getBatchSize());
+		assertEquals(MAX_PAUSE, controller.getPause());
+
+	}
+
+	@Test
+	public void resetReturnsToFullSpeed() throws InterruptedException {
+
+		repository.latency = 2000;
+		importEvents(100);
+		controller.reset();
+
+		assertEquals(MAX_BATCH_SIZE, controller.getBatchSize());
+		assertEquals(0, controller.getPause());
+		assertEquals(0, controller.getAverageLatency());
+
+	}
+
+	@Test
+	public void stoppedControllerDoesNotPause() throws InterruptedException {
+
+		controller.stop();
+		repository.latency = 2000;
+		importEvents(100);
+
+		assertTrue(clock.sleeps.isEmpty());
+
+	}
+
+	@Test(timeout = 5000)
+	public void stopEndsPauseInProgress() throws InterruptedException {
+
+		final SwitchableClock switchableClock = new SwitchableClock();
+		final ImportRateController pausingController = new ImportRateController("TEST: ", TARGET_LATENCY, 1, 1, 
+				60000, switchableClock);
+
+		/* Build the pause up to a minute without actually waiting */
+		while (pausingController.getPause() < 60000) {
+			pausingController.recordLatency(2000);
+			pausingController.throttle();
+		}
+
+		switchableClock.realWaits = true;
+		Thread importThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					pausingController.recordLatency(2000);
+					pausingController.throttle();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		importThread.start();
+
+		while (!switchableClock.waiting) {
+			Thread.sleep(10);
+		}
+		pausingController.stop();
+		importThread.join();
+
+	}
+
+	@Test
+	public void reportsCurrentRate() throws InterruptedException {
+
+		repository.latency = 100;
+		importEvents(10);
+
+		/* 10 events at 100ms each with no pause */
+		assertEquals(10.0, controller.getCurrentRate(), 0.001);
+
+	}
+
+	/*
+	 * Imports events the way LMSEventImporter does: time the save, record it
+	 * and then let the controller throttle.
+	 */
+	private void importEvents(int count) throws InterruptedException {
+
+		for (int i = 0; i < count; i++) {
+			long start = controller.startWrite();
+			repository.save();
+			controller.recordWrite(start);
+			controller.throttle();
+		}
+
+	}
+
+	/*
+	 * Imports events whose writes alternate between two latencies.
+	 */
+	private void importMixedEvents(int count, long fastLatency, long slowLatency) throws InterruptedException {
+
+		for (int i = 0; i < count; i++) {
+			repository.latency = i % 2 == 0 ? fastLatency : slowLatency;
+			importEvents(1);
+		}
+
+	}
+
+	/*
+	 * Clock that only moves when told to and records sleeps instead of
+	 * taking them.
+	 */
+	private static class FakeClock implements ImportRateController.Clock {
+
+		private long nanos;
+		private final List<Long> sleeps = new ArrayList<Long>();
+
+		@Override
+		public long nanoTime() {
+			return nanos;
+		}
+
+		@Override
+		public void await(Object monitor, long millis) {
+			sleeps.add(millis);
+			advance(millis);
+		}
+
+		private void advance(long millis) {
+			nanos += millis * 1000000L;
+		}
+
+	}
+
+	/*
+	 * Clock that skips pauses until told to really wait on the monitor.
+	 */
+	private static class SwitchableClock implements ImportRateController.Clock {
+
+		private long offset;
+		private volatile boolean realWaits;
+		private volatile boolean waiting;
+
+		@Override
+		public long nanoTime() {
+			return System.nanoTime() + offset;
+		}
+
+		@Override
+		public void await(Object monitor, long millis) throws InterruptedException {
+			if (realWaits) {
+				waiting = true;
+				monitor.wait(millis);
+			} else {
+				offset += millis * 1000000L;
+			}
+		}
+
+	}
+
+	/*
+	 * Stands in for the JCR session; each save takes the configured latency.
+	 */
+	private static class SlowRepository {
+
+		private final FakeClock clock;
+		private long latency;
+
+		private SlowRepository(FakeClock clock) {
+			this.clock = clock;
+		}
+
+		private void save() {
+			clock.advance(latency);
+		}
+
+	}
+
+}
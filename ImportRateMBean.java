@@ -0,0 +1,31 @@
+package org.fhcrc.centernet.service;
+
+/**
+ * JMX view of an LMS importer feed's adaptive write rate. One is registered
+ * per feed under the object name
+ * <code>org.fhcrc.centernet:type=LMSEventImporter,feed=&lt;feed name&gt;</code>.
+ */
+public interface ImportRateMBean {
+
+	/**
+	 * @return the estimated number of events per second the feed is
+	 * currently allowed to write
+	 */
+	double getCurrentRate();
+
+	/**
+	 * @return number of events written between pauses
+	 */
+	int getBatchSize();
+
+	/**
+	 * @return pause taken between batches, in milliseconds
+	 */
+	long getPause();
+
+	/**
+	 * @return recent average save + replicate latency, in milliseconds
+	 */
+	long getAverageLatency();
+
+}
@@ -12,18 +12,26 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Dictionary;
+import java.util.Hashtable;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -33,12 +41,14 @@ import org.apache.jackrabbit.commons.JcrUtils;
 import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import com.day.cq.replication.ReplicationActionType;
 import com.day.cq.replication.ReplicationException;
 import com.day.cq.replication.Replicator;
 import com.day.cq.search.PredicateGroup;
 import com.day.cq.search.QueryBuilder;
 import com.day.cq.search.result.Hit;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,10 +67,16 @@ import org.fhcrc.common.services.ErrorEmailService;
 @Service(value = java.lang.Runnable.class)
 @Component(name = "org.fhcrc.centernet.service.LMSEventImporter", 
 				label = "Fred Hutch - Cornerstone Event Importer", 
-				description = "Service to import the training events from Fred Hutch's Learning Management System into CenterNet", 
-				metatype = true)
+				description = "Service to import the training events from Fred Hutch's Learning Management System into CenterNet. " 
+						+ "Add one configuration per LMS export to be imported.", 
+				metatype = true,
+				configurationFactory = true,
+				policy = ConfigurationPolicy.OPTIONAL)
 @Properties({
 	@Property(name = "service.vendor", value = "Fred Hutch", propertyPrivate = true),		
+	@Property(name = "feed.name", value = "", 
+		description = "Short name identifying this feed in logs, error emails and JMX. Defaults to the configuration PID", 
+		label = "Feed name"),
 	@Property(name = "scheduler.concurrent", label = "Allow concurrent executions", description = "Allow concurrent executions of this scheduled service", 
 		boolValue = false, propertyPrivate = true),
 	@Property(name = "scheduler.enabled", label = "Job Enabled?", description = "Turn on or off the schedule job", 
@@ -72,15 +88,55 @@ import org.fhcrc.common.services.ErrorEmailService;
 		description = "Location in JCR where new events should be placed", label = "Importer target location"),
 	@Property(name = "service.dataSource", value="https://is.fhcrc.org/sites/centernet/lms/lms-import-data.txt",
 		description = "URL at which to find the tab-separated data file for this service to ingest",
-		label = "Data source URL")
+		label = "Data source URL"),
+	@Property(name = "feed.columns", 
+		value = {"title", "locatorNumber", "description", "location", "host", "contactName", "contactEmail", 
+				"contactPhone", "startDate", "startTime", "endDate", "endTime", "isActive", "uid", "summary", 
+				"optIn", "deepLink"},
+		description = "Fields found in each line of the data file, in the order they appear. Columns named " 
+				+ "anything other than the default field names are ignored", 
+		label = "Column mapping"),
+	@Property(name = "feed.tagMapping", 
+		value = {"Center IT=web-depts:AD/AD07", 
+				"Clinical Research Support (CRS)=web-depts:AD/AD0103", 
+				"Communications & Marketing=web-depts:AD/AD09", 
+				"Environmental Health & Safety (EH&S)=web-depts:AD/AD0303", 
+				"Financial Planning and Analysis=web-depts:AD/AD0405", 
+				"FMIS=web-depts:AD/AD04013", 
+				"Fred Hutch=", 
+				"HR Training=web-depts:AD/AD0603", 
+				"Hutch Research Ethics Education Program=web-depts:HX/HX011", 
+				"Institutional Review Office (IRO)=web-depts:AD/AD0101", 
+				"Office of Sponsored Research=web-depts:AD/AD0402"},
+		description = "Vendor to department tag mapping, in the form <vendor>=<tag ID>. " 
+				+ "If new Vendors are added in Cornerstone, they must be added here as well", 
+		label = "Tag mapping"),
+	@Property(name = "importer.throttle.targetLatency", intValue = 500,
+		description = "Average save and replication time per event, in milliseconds, above which the importer backs off",
+		label = "Target write latency (ms)"),
+	@Property(name = "importer.throttle.windowSize", intValue = 20,
+		description = "Number of recent events to average write latency over. The window starts empty again after "
+				+ "every back-off, and once the importer pauses after every event this many slow events are needed "
+				+ "to double the pause",
+		label = "Latency window size"),
+	@Property(name = "importer.throttle.maxBatchSize", intValue = 10,
+		description = "Largest number of events written between pauses when the repository is healthy",
+		label = "Maximum batch size"),
+	@Property(name = "importer.throttle.maxPause", intValue = 10000,
+		description = "Longest pause, in milliseconds, taken between batches when the repository is slow",
+		label = "Maximum pause (ms)")
 })
 public class LMSEventImporter implements Runnable {
 	
 	/* Logging and defaults */
 	private static final Logger log = LoggerFactory.getLogger(LMSEventImporter.class);
-	private static final String LOGGING_PREFIX = "LMS IMPORTER: ";
 	private static final String TARGET_PATH_DEFAULT = "/content/centernet/en/e/lms-import";
 	private static final String DEFAULT_PAGE_NAME = "imported-training-event";
+	/* Throttling defaults */
+	private static final int THROTTLE_TARGET_LATENCY_DEFAULT = 500;
+	private static final int THROTTLE_WINDOW_SIZE_DEFAULT = 20;
+	private static final int THROTTLE_MAX_BATCH_SIZE_DEFAULT = 10;
+	private static final int THROTTLE_MAX_PAUSE_DEFAULT = 10000;
 	/* Scaffolding information */
 	private static final String PROP_SCAFFOLDING = "cq:scaffolding";
 	private static final String PROP_RESOURCE_TYPE = "sling:resourceType";
@@ -126,44 +182,55 @@ public class LMSEventImporter implements Runnable {
 	private final Integer OPT_IN = 15;
 	private final Integer DEEP_LINK = 16;
 	
-	/* Number of fields we expect so we can check each line before we commit to importing it */
-	private final Integer EXPECTED_NUMBER_OF_FIELDS = 17;
+	/* Names used in the column mapping for the fields above, in the same order */
+	private static final String[] FIELD_NAMES = {"title", "locatorNumber", "description", "location", "host", 
+		"contactName", "contactEmail", "contactPhone", "startDate", "startTime", "endDate", "endTime", 
+		"isActive", "uid", "summary", "optIn", "deepLink"};
+	/* Fields without which no line of a feed can be imported */
+	private static final String[] REQUIRED_FIELD_NAMES = {"title", "startDate", "startTime", "uid"};
 	
-	/* Vendor values from Cornerstone. If new Vendors are added, they must be added here as well */
-	final String PN_VENDOR_CIT = "Center IT";
-	final String PN_VENDOR_CRS = "Clinical Research Support (CRS)";
-	final String PN_VENDOR_COMMUNICATIONS = "Communications & Marketing";
-	final String PN_VENDOR_EHS = "Environmental Health & Safety (EH&S)";
-	final String PN_VENDOR_FINANCIAL_PLANNING = "Financial Planning and Analysis";
-	final String PN_VENDOR_FMIS = "FMIS";
-	final String PN_VENDOR_FRED_HUTCH = "Fred Hutch";
-	final String PN_VENDOR_HR_TRAINING = "HR Training";
-	final String PN_VENDOR_RESEARCH_ETHICS = "Hutch Research Ethics Education Program";
-	final String PN_VENDOR_IRO = "Institutional Review Office (IRO)";
-	final String PN_VENDOR_OSR = "Office of Sponsored Research";
+	/* Default vendor to department tag mapping. If new Vendors are added in Cornerstone, they must be added here as well */
+	private static final String[] TAG_MAPPING_DEFAULT = {"Center IT=web-depts:AD/AD07", 
+		"Clinical Research Support (CRS)=web-depts:AD/AD0103", 
+		"Communications & Marketing=web-depts:AD/AD09", 
+		"Environmental Health & Safety (EH&S)=web-depts:AD/AD0303", 
+		"Financial Planning and Analysis=web-depts:AD/AD0405", 
+		"FMIS=web-depts:AD/AD04013", 
+		"Fred Hutch=", 
+		"HR Training=web-depts:AD/AD0603", 
+		"Hutch Research Ethics Education Program=web-depts:HX/HX011", 
+		"Institutional Review Office (IRO)=web-depts:AD/AD0101", 
+		"Office of Sponsored Research=web-depts:AD/AD0402"};
 	
-	/* Department tag IDs for the vendors listed above */
-	final String PN_TAG_CIT = "web-depts:AD/AD07";
-	final String PN_TAG_CRS = "web-depts:AD/AD0103";
-	final String PN_TAG_COMMUNICATIONS = "web-depts:AD/AD09";
-	final String PN_TAG_EHS = "web-depts:AD/AD0303";
-	final String PN_TAG_FINANCIAL_PLANNING = "web-depts:AD/AD0405";
-	final String PN_TAG_FMIS = "web-depts:AD/AD04013";
-	final String PN_TAG_FRED_HUTCH = "";
-	final String PN_TAG_HR_TRAINING = "web-depts:AD/AD0603";
-	final String PN_TAG_RESEARCH_ETHICS = "web-depts:HX/HX011";
-	final String PN_TAG_IRO = "web-depts:AD/AD0101";
-	final String PN_TAG_OSR = "web-depts:AD/AD0402";
+	/* Outcome of importing one line of data */
+	private enum EventResult {
+		/* The event was saved */
+		SAVED,
+		/* The line reached the repository but could not be written */
+		WRITE_FAILED,
+		/* The line was not written because of a problem with its data */
+		SKIPPED
+	}
 	
 	/* Class fields */
+	private String feedName;
+	private String logPrefix;
 	private String targetPath;
 	private String dataSource;
+	private String[] columns;
+	private int[] columnIndexes;
+	private String[] tagMapping;
 	private Session adminSession;
 	private PageManager pageManager;
 	private TagManager tagManager;
 	private ResourceResolver resResolver;
 	private Map<String, String> uidMap;
 	private Map<String, String> tagMap;
+	private ImportRateController rateController;
+	private ServiceRegistration rateMBeanRegistration;
+	private final AtomicBoolean running = new AtomicBoolean(false);
+	private volatile boolean active;
+	private volatile Future<?> currentImport;
 	
 	@Reference
 	private ResourceResolverFactory factory;
@@ -174,32 +241,147 @@ public class LMSEventImporter implements Runnable {
 	@Reference
 	private EmailService errorEmailService;
 	
+	@Reference
+	private LMSImportExecutor importExecutor;
+	
 	@Activate
 	private void activate(ComponentContext context) {	
 		
         log.info("Activating Fred Hutch - LMS Importer Service. " + this.getClass().getName());
         
         Dictionary<?, ?> properties = context.getProperties();
+        feedName = OsgiUtil.toString(properties, "feed.name", "").trim();
+        if (feedName.isEmpty()) {
+        	/* Factory configurations each get their own PID; an unconfigured instance falls back to the component name */
+        	feedName = OsgiUtil.toString(properties, "service.pid", 
+        			OsgiUtil.toString(properties, "component.name", LMSEventImporter.class.getName()));
+        }
+        logPrefix = "LMS IMPORTER [" + feedName + "]: ";
         targetPath = OsgiUtil.toString(properties, "service.target", new String());
         dataSource = OsgiUtil.toString(properties, "service.dataSource", new String());
+        columns = PropertiesUtil.toStringArray(properties.get("feed.columns"), FIELD_NAMES);
+        columnIndexes = createColumnIndexes(columns);
+        tagMapping = PropertiesUtil.toStringArray(properties.get("feed.tagMapping"), TAG_MAPPING_DEFAULT);
+        rateController = new ImportRateController(logPrefix,
+        		OsgiUtil.toInteger(properties, "importer.throttle.targetLatency", THROTTLE_TARGET_LATENCY_DEFAULT),
+        		OsgiUtil.toInteger(properties, "importer.throttle.windowSize", THROTTLE_WINDOW_SIZE_DEFAULT),
+        		OsgiUtil.toInteger(properties, "importer.throttle.maxBatchSize", THROTTLE_MAX_BATCH_SIZE_DEFAULT),
+        		OsgiUtil.toInteger(properties, "importer.throttle.maxPause", THROTTLE_MAX_PAUSE_DEFAULT));
+        rateMBeanRegistration = registerRateMBean(context);
+        active = true;
         
     }
 	
 	@Deactivate
 	private void deactivate() {
-		log.info(LOGGING_PREFIX + "Service deactivated");
+		
+		/* Stop any import of this feed that is queued or running so it cannot
+		 * outlive the references it uses, or overlap the run of a reconfigured
+		 * instance of this feed. A running import is never interrupted, as an
+		 * interrupt during repository I/O can close the repository's files;
+		 * it ends any throttle pause and stops before its next line instead */
+		active = false;
+		rateController.stop();
+		Future<?> importInProgress = currentImport;
+		if (importInProgress != null) {
+			importInProgress.cancel(false);
+			currentImport = null;
+		}
+		
+		if (rateMBeanRegistration != null) {
+			rateMBeanRegistration.unregister();
+			rateMBeanRegistration = null;
+		}
+		log.info(logPrefix + "Service deactivated");
+		
+	}
+	
+	/*
+	 * Publishes this feed's rate controller through the JMX whiteboard so the
+	 * current import rate can be watched from the JMX console.
+	 */
+	private ServiceRegistration registerRateMBean(ComponentContext context) {
+		
+		try {
+			
+			Hashtable<String, Object> mbeanProperties = new Hashtable<String, Object>();
+			mbeanProperties.put("jmx.objectname", 
+					"org.fhcrc.centernet:type=LMSEventImporter,feed=" + ObjectName.quote(feedName));
+			StandardMBean mbean = new StandardMBean((ImportRateMBean) rateController, ImportRateMBean.class);
+			return context.getBundleContext().registerService(DynamicMBean.class.getName(), mbean, mbeanProperties);
+			
+		} catch (NotCompliantMBeanException e) {
+			log.error(logPrefix + "Problem registering import rate MBean", e);
+			return null;
+		}
+		
 	}
 
+	/**
+	 * Called by the scheduler. Hands the import off to the shared executor so
+	 * that a slow feed does not hold up the scheduler or the other feeds. A
+	 * run is skipped if the previous run of this feed has not finished yet.
+	 */
 	@Override
 	public void run() {
 		
+		if (columnIndexes == null) {
+			log.error(logPrefix + "Column mapping is invalid, not importing this feed until it is fixed");
+			return;
+		}
+		
+		if (!running.compareAndSet(false, true)) {
+			log.warn(logPrefix + "Previous import still running, skipping this run");
+			return;
+		}
+		
+		Future<?> queued = importExecutor.submit(feedName, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (active) {
+						importFeed();
+					}
+				} catch (RuntimeException e) {
+					/* Keep a failing feed from taking down the shared executor thread */
+					log.error(logPrefix + "Unexpected error during import", e);
+					sendErrorEmail(COMMUNICATIONS_EMAIL_CONTACT, "LMS importer error: import failed", String.valueOf(e.getMessage()));
+				} finally {
+					running.set(false);
+				}
+			}
+		});
+		
+		if (queued == null) {
+			running.set(false);
+		} else {
+			currentImport = queued;
+			/* Deactivation may have happened while the import was being queued */
+			if (!active) {
+				queued.cancel(false);
+			}
+		}
+		
+	}
+	
+	/*
+	 * Imports every line of this feed's data source
+	 */
+	private void importFeed() {
+		
 		String inputLine;
-		log.info(LOGGING_PREFIX + "Starting import");
-		log.info(LOGGING_PREFIX + "targetPath = " + targetPath);
-		log.info(LOGGING_PREFIX + "dataSource = " + dataSource);
+		boolean stopped = false;
+		int imported = 0,
+				failed = 0,
+				rejected = 0;
+		long startTime = System.currentTimeMillis();
+		log.info(logPrefix + "Starting import");
+		log.info(logPrefix + "targetPath = " + targetPath);
+		log.info(logPrefix + "dataSource = " + dataSource);
 		
 		uidMap = createUIDMap();
 		tagMap = createTagMap();
+		rateController.reset();
 		
 		try {
 			
@@ -214,33 +396,60 @@ public class LMSEventImporter implements Runnable {
 			inputLine = dataReader.readLine();
 			while ((inputLine = dataReader.readLine()) != null) {
 				
-				log.debug(LOGGING_PREFIX + "inputLine = " + inputLine);
+				/* Stop between lines if this feed has been deactivated */
+				if (!active) {
+					stopped = true;
+					break;
+				}
+				
+				log.debug(logPrefix + "inputLine = " + inputLine);
 				/* The data is a tab-delimited string */
 				String[] data = inputLine.split("\t");
 				/* If we have the wrong number of fields, notify HR Training and move on to the next line */
-				if (data.length != EXPECTED_NUMBER_OF_FIELDS) {
+				if (data.length != columns.length) {
 					
 					String errorString = createDataDump(data);
-					errorEmailService.sendEmail(HR_TRAINING_EMAIL_CONTACT, 
+					sendErrorEmail(HR_TRAINING_EMAIL_CONTACT, 
 							"AEM LMS importer error: Unexpected number of fields", 
 							errorString);
-					log.error(LOGGING_PREFIX + "Unexpected number of fields from LMS output. Aborting line " + errorString);
+					log.error(logPrefix + "Unexpected number of fields from LMS output. Aborting line " + errorString);
+					rejected++;
 					continue;
 					
 				} else {
 					
-					createEventNode(data);
+					EventResult result = createEventNode(mapColumns(data));
+					if (result == EventResult.SAVED) {
+						imported++;
+					} else {
+						failed++;
+					}
+					/* Back off if the repository is struggling to keep up, including when it is failing writes */
+					if (result != EventResult.SKIPPED) {
+						rateController.throttle();
+					}
 					
 				}
 				
 			}
 			
+			dataReader.close();
+			
+			log.info(logPrefix + (stopped ? "Import stopped early after " : "Import finished in ") 
+					+ (System.currentTimeMillis() - startTime) + "ms. " + imported + " lines imported, " 
+					+ failed + " failed, " + rejected + " rejected. Average write latency " 
+					+ rateController.getAverageLatency() + "ms, final rate " 
+					+ String.format("%.2f", rateController.getCurrentRate()) + " events/s");
+			
+		} catch (InterruptedException e) {
+			log.warn(logPrefix + "Import interrupted while throttling, stopping");
+			Thread.currentThread().interrupt();
 		} catch (MalformedURLException e) {
-			log.error(LOGGING_PREFIX + "Incorrect URL for data file: " + dataSource);
-			errorEmailService.sendEmail(COMMUNICATIONS_EMAIL_CONTACT, "LMS importer error: malformed URL for data file", e.getMessage());
+			log.error(logPrefix + "Incorrect URL for data file: " + dataSource);
+			sendErrorEmail(COMMUNICATIONS_EMAIL_CONTACT, "LMS importer error: malformed URL for data file", e.getMessage());
 		} catch (IOException e) {
-			log.error(LOGGING_PREFIX + "Problem reading data file");
-			errorEmailService.sendEmail(COMMUNICATIONS_EMAIL_CONTACT, "LMS importer error: cannot read data file", e.getMessage());
+			log.error(logPrefix + "Problem reading data file");
+			sendErrorEmail(COMMUNICATIONS_EMAIL_CONTACT, "LMS importer error: cannot read data file", e.getMessage());
 		}
 		
 	}
@@ -269,7 +478,7 @@ public class LMSEventImporter implements Runnable {
 			cal.setTime(date);
 			return cal;
 		} catch (ParseException e) {
-			log.error(LOGGING_PREFIX + "Incorrectly formatted date string: " + dateString + " " + timeString, e);
+			log.error(logPrefix + "Incorrectly formatted date string: " + dateString + " " + timeString, e);
 			StringBuffer errorSb = new StringBuffer();
 			errorSb.append("<p style=\"line-height: 20px; font-family: Arial, 'Helvetica Neue', Helvetica, sans-serif; font-size: 16px;\">");
 			errorSb.append("I found the following date and time strings in the data file that could not be parsed by the importer:");
@@ -280,7 +489,7 @@ public class LMSEventImporter implements Runnable {
 			errorSb.append("Time string (must be formatted HH:mm:ss): ");
 			errorSb.append(timeString);
 			errorSb.append("</p>");
-			errorEmailService.sendEmail(HR_TRAINING_EMAIL_CONTACT, 
+			sendErrorEmail(HR_TRAINING_EMAIL_CONTACT, 
 					"AEM LMS importer error: incorrectly formatted date in data file", 
 					errorSb.toString());
 			return null;
@@ -292,10 +501,16 @@ public class LMSEventImporter implements Runnable {
 	 * Workhorse function that takes in the line of data from the file and 
 	 * either creates a new Event Page or updates the Event Page whose UID 
 	 * matches the one in the UID field.
-	 * @param data - String[] containing EXPECTED_NUMBER_OF_FIELDS entries
+	 * @param data - String[] containing one entry per field in FIELD_NAMES
+	 * @return EventResult saying whether the event was saved, failed in the
+	 * repository or was skipped because of its data
 	 */
 	@SuppressWarnings("deprecation")
-	private void createEventNode(String[] data) {
+	private EventResult createEventNode(String[] data) {
+		
+		EventResult result = EventResult.SKIPPED;
+		boolean writeStarted = false;
+		long writeStart = 0;
 		
 		if (targetPath == null || targetPath.trim().isEmpty()) {
 			targetPath = TARGET_PATH_DEFAULT;
@@ -324,12 +539,17 @@ public class LMSEventImporter implements Runnable {
 			 * notify HR Training and move on to the next line of data. */
 			String dataDump = createDataDump(data);
 			
-			errorEmailService.sendEmail(HR_TRAINING_EMAIL_CONTACT, "AEM LMS importer error: Event contains no Start Date", dataDump);
-			log.error(LOGGING_PREFIX + "Event contained no start date. Data array dump: " + dataDump);
-			return;
+			sendErrorEmail(HR_TRAINING_EMAIL_CONTACT, "AEM LMS importer error: Event contains no Start Date", dataDump);
+			log.error(logPrefix + "Event contained no start date. Data array dump: " + dataDump);
+			return EventResult.SKIPPED;
 			
 		}
 		
+		/* createDate has already reported any dates it could not parse */
+		if (startCal == null || endCal == null) {
+			return EventResult.SKIPPED;
+		}
+		
 		try {
 			
 			resResolver = factory.getAdministrativeResourceResolver(null);
@@ -347,19 +567,22 @@ public class LMSEventImporter implements Runnable {
 			if (categoryTag != null) {
 				tagList.add(categoryTag);
 			} else {
-				log.warn(LOGGING_PREFIX + "Problem resolving category tag " + TRAINING_EVENT_CATEGORY_TAG_ID);
+				log.warn(logPrefix + "Problem resolving category tag " + TRAINING_EVENT_CATEGORY_TAG_ID);
 			}
 			
 			if (departmentTag != null) {
 				tagList.add(departmentTag);
 			} else {
-				log.warn(LOGGING_PREFIX + "Problem resolving vendor to department tag " + data[HOST]);
+				log.warn(logPrefix + "Problem resolving vendor to department tag " + data[HOST]);
 			}
 			
 			String[] dateParts = data[START_DATE].split("/");
 			/* Make sure we actually have a date here */
 			if (dateParts.length > 1) {
 				
+				/* From here on, a failure means the repository could not take the write */
+				result = EventResult.WRITE_FAILED;
+				
 				/* Date is in the form MM/DD/YYYY */
 				String datePath = "/" + dateParts[2] + "/" + dateParts[0];
 				
@@ -384,8 +607,8 @@ public class LMSEventImporter implements Runnable {
 					
 					eventPage = pageManager.getPage(uidMap.get(data[UID]));
 					if (eventPage == null) {
-						log.error(LOGGING_PREFIX + "Problem getting page for update " + uidMap.get(data[UID]));
-						return;
+						log.error(logPrefix + "Problem getting page for update " + uidMap.get(data[UID]));
+						return EventResult.SKIPPED;
 					}
 					
 				} else {
@@ -454,8 +677,11 @@ public class LMSEventImporter implements Runnable {
 
 				}
 				
-				/* Save everything */
+				/* Save everything, timing the write and replicate stages for the rate controller */
+				writeStart = rateController.startWrite();
+				writeStarted = true;
 				adminSession.save();
+				result = EventResult.SAVED;
 				
 				/* If TrainingIsActive == false, then deactivate the page */
 				if (eventPage != null && data[IS_ACTIVE].toLowerCase().equals("false")) {
@@ -463,7 +689,7 @@ public class LMSEventImporter implements Runnable {
 					try {
 						replicator.replicate(adminSession, ReplicationActionType.DEACTIVATE, eventPage.getPath());
 					} catch (ReplicationException e) {
-						log.error(LOGGING_PREFIX + "Problem deactivating page " + eventPage.getPath(), e);
+						log.error(logPrefix + "Problem deactivating page " + eventPage.getPath(), e);
 					}
 
 				}
@@ -477,7 +703,7 @@ public class LMSEventImporter implements Runnable {
 						try {
 							replicator.replicate(adminSession, ReplicationActionType.ACTIVATE, eventPage.getPath());
 						} catch (ReplicationException e) {
-							log.error(LOGGING_PREFIX + "Problem replicating page " + eventPage.getPath(), e);
+							log.error(logPrefix + "Problem replicating page " + eventPage.getPath(), e);
 						}
 						
 					}
@@ -489,14 +715,20 @@ public class LMSEventImporter implements Runnable {
 			}
 			
 		} catch (LoginException e) {
-			log.error(LOGGING_PREFIX + "Problem logging in to create imported event node", e);
+			log.error(logPrefix + "Problem logging in to create imported event node", e);
+			result = EventResult.WRITE_FAILED;
 		} catch (RepositoryException e) {
-			log.error(LOGGING_PREFIX + "Repo Exception attempting to create imported event node", e);
+			log.error(logPrefix + "Repo Exception attempting to create imported event node", e);
 		} catch (WCMException e) {
-			log.error(LOGGING_PREFIX + "WCM Exception attempting to replicate imported event node", e);
-			errorEmailService.sendEmail(COMMUNICATIONS_EMAIL_CONTACT, "LMS Importer error: Cannot replicate event", e.getMessage());
+			log.error(logPrefix + "WCM Exception attempting to replicate imported event node", e);
+			sendErrorEmail(COMMUNICATIONS_EMAIL_CONTACT, "LMS Importer error: Cannot replicate event", e.getMessage());
 		} finally {
 
+			/* Slow and failed writes are a signal for the rate controller too */
+			if (writeStarted) {
+				rateController.recordWrite(writeStart);
+			}
+			
 			/* Double-check that we are logged out */
 			if (adminSession != null) {
 				adminSession.logout();
@@ -504,6 +736,8 @@ public class LMSEventImporter implements Runnable {
 			
 		}
 		
+		return result;
+		
 	}
 	
 	/*
@@ -538,7 +772,7 @@ public class LMSEventImporter implements Runnable {
 
 		    	if (uid != null && !uid.isEmpty()) {
 		    		uidMap.put(uid, p.getPath());
-		    		log.debug(LOGGING_PREFIX + "Adding UID pair to map: " + uid + ", " + p.getPath());
+		    		log.debug(logPrefix + "Adding UID pair to map: " + uid + ", " + p.getPath());
 		    	}
 
 
@@ -547,9 +781,9 @@ public class LMSEventImporter implements Runnable {
 		    adminSession.logout();
 
 		} catch (RepositoryException e) {
-			log.error(LOGGING_PREFIX + "Problem adapting hit to Page.", e);
+			log.error(logPrefix + "Problem adapting hit to Page.", e);
 	    } catch (LoginException e) {
-	    	log.error(LOGGING_PREFIX + "Problem logging in admin session for UID Map", e);
+	    	log.error(logPrefix + "Problem logging in admin session for UID Map", e);
 	    } finally {
 	    	
 	    	/* Double-check that we are logged out */
@@ -564,28 +798,99 @@ public class LMSEventImporter implements Runnable {
 	}
 	
 	/*
-	 * Initializes the tagMap of vendor titles to tag IDs
+	 * Initializes the tagMap of vendor titles to tag IDs from this feed's
+	 * tag mapping configuration
 	 */
 	private Map<String, String> createTagMap() {
 		
 		Map<String, String> map = new HashMap<String, String>();
 		
-		map.put(PN_VENDOR_CIT, PN_TAG_CIT);
-		map.put(PN_VENDOR_CRS, PN_TAG_CRS);
-		map.put(PN_VENDOR_COMMUNICATIONS, PN_TAG_COMMUNICATIONS);
-		map.put(PN_VENDOR_EHS, PN_TAG_EHS);
-		map.put(PN_VENDOR_FINANCIAL_PLANNING, PN_TAG_FINANCIAL_PLANNING);
-		map.put(PN_VENDOR_FRED_HUTCH, PN_TAG_FRED_HUTCH);
-		map.put(PN_VENDOR_FMIS, PN_TAG_FMIS);
-		map.put(PN_VENDOR_HR_TRAINING, PN_TAG_HR_TRAINING);
-		map.put(PN_VENDOR_RESEARCH_ETHICS, PN_TAG_RESEARCH_ETHICS);
-		map.put(PN_VENDOR_IRO, PN_TAG_IRO);
-		map.put(PN_VENDOR_OSR, PN_TAG_OSR);
+		for (String entry : tagMapping) {
+			
+			int separator = entry.indexOf('=');
+			if (separator < 1) {
+				log.warn(logPrefix + "Ignoring malformed tag mapping " + entry);
+				continue;
+			}
+			map.put(entry.substring(0, separator).trim(), entry.substring(separator + 1).trim());
+			
+		}
 		
 		return map;
 		
 	}
 	
+	/*
+	 * Works out, for each of the fields in FIELD_NAMES, which column of the
+	 * data file it is found in. Optional fields missing from the column
+	 * mapping get -1.
+	 * 
+	 * @param String[] columns - the configured column names, in file order
+	 * 
+	 * @returns int[] - the column index of each field, in FIELD_NAMES order,
+	 * or null if a field is mapped twice or a required field is not mapped
+	 */
+	private int[] createColumnIndexes(String[] columns) {
+		
+		Map<String, Integer> fieldIndexes = new HashMap<String, Integer>();
+		int[] indexes = new int[FIELD_NAMES.length];
+		
+		for (int i = 0; i < FIELD_NAMES.length; i++) {
+			fieldIndexes.put(FIELD_NAMES[i], i);
+			indexes[i] = -1;
+		}
+		
+		for (int i = 0; i < columns.length; i++) {
+			
+			Integer field = fieldIndexes.get(columns[i].trim());
+			if (field != null && indexes[field] >= 0) {
+				log.error(logPrefix + "Column " + columns[i] + " is mapped more than once");
+				return null;
+			} else if (field != null) {
+				indexes[field] = i;
+			} else {
+				log.info(logPrefix + "Ignoring unmapped column " + columns[i]);
+			}
+			
+		}
+		
+		for (String required : REQUIRED_FIELD_NAMES) {
+			if (indexes[fieldIndexes.get(required)] < 0) {
+				log.error(logPrefix + "No column mapped for required field " + required);
+				return null;
+			}
+		}
+		
+		for (int i = 0; i < FIELD_NAMES.length; i++) {
+			if (indexes[i] < 0) {
+				log.warn(logPrefix + "No column mapped for field " + FIELD_NAMES[i]);
+			}
+		}
+		
+		return indexes;
+		
+	}
+	
+	/*
+	 * Rearranges a line of data from the order of this feed's columns into
+	 * the order of FIELD_NAMES, filling unmapped fields with empty Strings.
+	 * 
+	 * @param String[] row - one line of the data file, split on tabs
+	 * 
+	 * @returns String[] - the same data, one entry per field in FIELD_NAMES
+	 */
+	private String[] mapColumns(String[] row) {
+		
+		String[] data = new String[FIELD_NAMES.length];
+		
+		for (int i = 0; i < FIELD_NAMES.length; i++) {
+			data[i] = columnIndexes[i] >= 0 ? row[columnIndexes[i]] : "";
+		}
+		
+		return data;
+		
+	}
+	
 	/*
 	 * Turns a String array into a double-pipe-separated String to be passed to
 	 * an error log or email.
@@ -612,7 +917,7 @@ public class LMSEventImporter implements Runnable {
 	 * is no vendor or no tag associated with that vendor, returns null
 	 * 
 	 * @param String vendor - the name of the vendor. Should match one of the 
-	 * constants listed above in the PN_VENDOR section.
+	 * vendors in this feed's tag mapping configuration.
 	 * @param TagManager tagManager
 	 * 
 	 * @returns Tag - the department tag to place on this event
@@ -637,6 +942,23 @@ public class LMSEventImporter implements Runnable {
 		
 	}
 	
+	/*
+	 * Sends an error email with this feed's name in the subject so the
+	 * recipients can tell which LMS export the problem came from. Nothing is
+	 * sent once the feed has been deactivated, as the email service may
+	 * already be gone.
+	 */
+	private void sendErrorEmail(String to, String subject, String body) {
+		
+		EmailService emailService = errorEmailService;
+		if (!active || emailService == null) {
+			log.warn(logPrefix + "Feed deactivated, not sending error email: " + subject);
+			return;
+		}
+		emailService.sendEmail(to, subject + " (" + feedName + ")", body);
+		
+	}
+	
 	/**
 	 * Appends an HTML String that happens to be the code for a Button
 	 * Component. See buttoncomponent.html in the Common CQ Package for the
@@ -0,0 +1,114 @@
+package org.fhcrc.centernet.service;
+
+import java.util.Dictionary;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.webconsole.plugins.event.internal.OsgiUtil;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded thread pool shared by every configured LMS importer feed. The
+ * scheduler only hands each feed off to this pool, so a slow feed ties up
+ * one of these threads rather than the Sling scheduler's. Each feed runs on
+ * a single thread from start to finish, so once every thread is busy the
+ * remaining feeds wait in the queue until a whole import finishes. Set the
+ * pool size to the number of feeds that share a schedule if none of them
+ * should wait for another.
+ */
+@Service(value = LMSImportExecutor.class)
+@Component(name = "org.fhcrc.centernet.service.LMSImportExecutor",
+				label = "Fred Hutch - Cornerstone Event Importer Executor",
+				description = "Thread pool shared by all Cornerstone Event Importer feeds",
+				metatype = true)
+@Properties({
+	@Property(name = "service.vendor", value = "Fred Hutch", propertyPrivate = true),
+	@Property(name = "executor.poolSize", intValue = 2,
+		description = "Number of feeds that may import at the same time. Feeds beyond this wait for a running import to finish", 
+		label = "Pool size"),
+	@Property(name = "executor.queueSize", intValue = 10,
+		description = "Number of feeds that may wait for a free thread before further runs are skipped",
+		label = "Queue size")
+})
+public class LMSImportExecutor {
+
+	private static final Logger log = LoggerFactory.getLogger(LMSImportExecutor.class);
+	private static final String LOGGING_PREFIX = "LMS IMPORTER: ";
+	private static final int POOL_SIZE_DEFAULT = 2;
+	private static final int QUEUE_SIZE_DEFAULT = 10;
+
+	private ThreadPoolExecutor executor;
+
+	@Activate
+	private void activate(ComponentContext context) {
+
+		Dictionary<?, ?> properties = context.getProperties();
+		int poolSize = Math.max(1, OsgiUtil.toInteger(properties, "executor.poolSize", POOL_SIZE_DEFAULT));
+		int queueSize = Math.max(1, OsgiUtil.toInteger(properties, "executor.queueSize", QUEUE_SIZE_DEFAULT));
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "lms-importer-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+
+		log.info(LOGGING_PREFIX + "Executor activated with " + poolSize + " threads and a queue of " + queueSize);
+
+	}
+
+	@Deactivate
+	private void deactivate() {
+
+		if (executor != null) {
+			/* Feeds stop their own imports cooperatively; interrupting them could break repository I/O */
+			executor.shutdown();
+			executor = null;
+		}
+		log.info(LOGGING_PREFIX + "Executor deactivated");
+
+	}
+
+	/**
+	 * Queues an import to run on the shared pool.
+	 * @param feedName name of the feed, used for logging only
+	 * @param task the import to run
+	 * @return a Future that can be used to cancel the import, or null if the
+	 * pool is shut down or its queue is full
+	 */
+	public Future<?> submit(String feedName, Runnable task) {
+
+		ThreadPoolExecutor current = executor;
+		if (current == null) {
+			log.warn(LOGGING_PREFIX + "Executor is not active, skipping run of feed " + feedName);
+			return null;
+		}
+
+		try {
+			return current.submit(task);
+		} catch (RejectedExecutionException e) {
+			log.warn(LOGGING_PREFIX + "Executor queue is full, skipping run of feed " + feedName);
+			return null;
+		}
+
+	}
+
+}